@@ -0,0 +1,218 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Keeps streaming statistics of the learning curve in constant memory. Every episode is appended
+ * as a row of a CSV time series, while only a few running sums are kept on the heap.
+ *
+ * Learning episodes (exploring, with changing weights) and testing episodes (frozen weights) are
+ * kept apart. Learning episodes get a rolling mean over the last WINDOW_SIZE learning episodes.
+ * Testing episodes get the mean and 95% confidence interval of the current testing phase, which
+ * all ran with the same weights. The last testPhaseMean of a phase is the average RLAgent prints in
+ * its table for that phase.
+ * @course EECS 391: Introduction to Artificial Intelligence
+ * @project PA4
+ * @author Timothy Sesler
+ * @author Adam Boe
+ * @date 23 April 2015
+ *
+ */
+public class LearningCurveStats {
+
+	/**
+	 * Number of recent learning episodes kept in memory for the rolling mean.
+	 */
+	public static final int WINDOW_SIZE = 100;
+
+	/**
+	 * Two sided 95% critical values of Student's t distribution for 1 to 30 degrees of freedom.
+	 * Past 30 the normal value of 1.96 is used.
+	 */
+	private static final double[] T_95 = {
+		12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+		2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+		2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+	};
+
+	/**
+	 * Size of the buffer rows are collected in before being written to the channel.
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * learningWindowMean is only filled in on learning rows, testPhaseMean and testPhaseCi95 only on testing rows.
+	 */
+	public static final String CSV_HEADER = "episode,testing,reward,kills,deaths,learningWindowMean,testPhaseMean,testPhaseCi95\n";
+
+	private FileChannel channel;	// The CSV file, null if it could not be opened.
+	private ByteBuffer buffer;	// Rows waiting to be written to the channel.
+
+	private long numEpisodes = 0;
+
+	private Deque<Double> learningWindow;	// The rewards of the last WINDOW_SIZE learning episodes.
+	private double learningWindowSum = 0.0;
+
+	private int numTestEpisodes = 0;	// Testing episodes in the current testing phase.
+	private double testMean = 0.0;	// Running mean of the current testing phase.
+	private double testSumSquaredDeviations = 0.0;	// Running sum of squared deviations from testMean (Welford).
+
+	public LearningCurveStats(File csvFile) {
+
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.learningWindow = new ArrayDeque<Double>(WINDOW_SIZE);
+
+		// create the directories if they do not already exist
+		csvFile.getAbsoluteFile().getParentFile().mkdirs();
+
+		try {
+			// Start a new time series for this run.
+			channel = new FileOutputStream(csvFile, false).getChannel();
+			append(CSV_HEADER);
+		} catch(IOException ex) {
+			System.err.println("Failed to open learning curve file. Reason: " + ex.getMessage());
+			channel = null;
+		}
+	}
+
+	/**
+	 * Adds a finished episode to the statistics and the CSV time series.
+	 * @param testing Whether the episode was a testing episode
+	 * @param reward The average cumulative reward of the footmen in this episode
+	 * @param kills Number of enemy footmen killed in this episode
+	 * @param deaths Number of friendly footmen killed in this episode
+	 */
+	public void recordEpisode(boolean testing, double reward, int kills, int deaths) {
+
+		numEpisodes++;
+		String row = String.format(Locale.ROOT, "%d,%d,%f,%d,%d,", numEpisodes, testing ? 1 : 0, reward, kills, deaths);
+
+		if (testing) {
+			// Update the running mean and variance of this testing phase.
+			numTestEpisodes++;
+			double delta = reward - testMean;
+			testMean += delta / numTestEpisodes;
+			testSumSquaredDeviations += delta * (reward - testMean);
+
+			row += String.format(Locale.ROOT, ",%f,%f\n", testMean, getTestConfidenceInterval());
+		}
+		else {
+			// Slide the rolling window.
+			if (learningWindow.size() == WINDOW_SIZE) {
+				learningWindowSum -= learningWindow.removeFirst();
+			}
+			learningWindow.addLast(reward);
+			learningWindowSum += reward;
+
+			row += String.format(Locale.ROOT, "%f,,\n", getLearningWindowMean());
+		}
+		append(row);
+	}
+
+	/**
+	 * Ends the current testing phase. The next testing episode starts a new phase. The CSV is flushed
+	 * so the curve can be plotted while training.
+	 */
+	public void endTestPhase() {
+
+		numTestEpisodes = 0;
+		testMean = 0.0;
+		testSumSquaredDeviations = 0.0;
+
+		flush();
+	}
+
+	/**
+	 * @return Number of episodes recorded so far.
+	 */
+	public long getNumEpisodes() {
+		return numEpisodes;
+	}
+
+	/**
+	 * @return Mean reward of the last WINDOW_SIZE learning episodes.
+	 */
+	public double getLearningWindowMean() {
+		return learningWindow.isEmpty() ? 0.0 : learningWindowSum / learningWindow.size();
+	}
+
+	/**
+	 * @return Mean reward of the current testing phase.
+	 */
+	public double getTestMean() {
+		return testMean;
+	}
+
+	/**
+	 * @return Sample variance of the reward of the current testing phase.
+	 */
+	public double getTestVariance() {
+		return numTestEpisodes > 1 ? testSumSquaredDeviations / (numTestEpisodes - 1) : 0.0;
+	}
+
+	/**
+	 * @return Half width of the 95% confidence interval of the mean reward of the current testing phase.
+	 */
+	public double getTestConfidenceInterval() {
+
+		if (numTestEpisodes < 2) return 0.0;
+
+		int degreesOfFreedom = numTestEpisodes - 1;
+		double t = degreesOfFreedom <= T_95.length ? T_95[degreesOfFreedom - 1] : 1.96;
+		return t * Math.sqrt(getTestVariance() / numTestEpisodes);
+	}
+
+	/**
+	 * Writes all buffered rows to the CSV file.
+	 */
+	public void flush() {
+
+		if (channel == null) return;
+
+		try {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch(IOException ex) {
+			System.err.println("Failed to write learning curve to file. Reason: " + ex.getMessage());
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Flushes and closes the CSV file.
+	 */
+	public void close() {
+
+		if (channel == null) return;
+
+		flush();
+		try {
+			channel.close();
+		} catch(IOException ex) {
+			System.err.println("Failed to close learning curve file. Reason: " + ex.getMessage());
+		}
+		channel = null;
+	}
+
+	/**
+	 * Adds a row to the buffer, flushing it first if the row does not fit.
+	 * @param row
+	 */
+	private void append(String row) {
+
+		if (channel == null) return;
+
+		byte[] bytes = row.getBytes(StandardCharsets.US_ASCII);
+		if (bytes.length > buffer.remaining()) {
+			flush();
+		}
+		buffer.put(bytes);
+	}
+}
@@ -8,11 +8,13 @@ import edu.cwru.sepia.environment.model.history.DamageLog;
 import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Template;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 import edu.cwru.sepia.util.DistanceMetrics;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 
 /**
@@ -35,17 +37,23 @@ public class RLAgent extends Agent {
     public int totalCompletedEpisodes = 0;
     public int completedLearningEpisodes = 0;
     public int completedTestingEpisodes = 0;
+    public int completedTestPhases = 0;
     
     public Map<Integer, Double> footmenRewardMap;	// Maps myFootmen ID to their total reward
     
     public double cumulativeReward;	// The total cumulative reward of a testing phase.
-    public List<Double> averageCumulativeRewards;	// The list of rewards to be printed at the end of testing phases.
+    public LearningCurveStats learningCurveStats;	// Streams per-episode results to agent_data/learning_curve.csv.
+    public int episodeKills;	// Enemy footmen killed this episode.
+    public int episodeDeaths;	// Friendly footmen killed this episode.
 
     private List<Integer> myFootmen;	// Your footmen
     private List<Integer> enemyFootmen;	// Enemy's footmen
     private List<Integer> deadEnemyFootmen;	// Tracks dead enemy footmen so that their kill reward cannot be taken multiple times.
     private boolean freezeForEvaluation = false;	// Determines if we're testing.
     private double maxQValue;	// The global Q value
+    private Map<Integer, Integer> templateRoles;	// Maps unit template ID to its role, kept across episodes.
+    private TargetAssigner targetAssigner;	// Jointly assigns footmen to enemies each significant event.
+    private Map<Integer, Double> footmenMaxQValues;	// Maps myFootmen ID to its best Q value from the last selectActions.
 
     /**
      * Convenience variable specifying enemy agent number. Use this whenever referring
@@ -53,6 +61,24 @@ public class RLAgent extends Agent {
      */
     public static final int ENEMY_PLAYERNUM = 1;
 
+    /**
+     * Roles a unit template can be classified as.
+     */
+    public static final int ROLE_UNKNOWN = 0;
+    public static final int ROLE_FOOTMAN = 1;
+
+    /**
+     * Version of classifyTemplate. Bump it whenever classifyTemplate changes, so the role tables cached by
+     * ScenarioCache get rebuilt.
+     */
+    public static final int ROLE_VERSION = 1;
+
+    /**
+     * Most footmen that can attack one enemy at once. Footmen are melee units, so this is the number of tiles
+     * around the enemy.
+     */
+    public static final int MAX_ATTACKERS = 8;
+
     /**
      * Set this to whatever size your feature vector is.
      */
@@ -65,6 +91,8 @@ public class RLAgent extends Agent {
 
     public Double[] weights;	// Your Q-function weights.
     public Double[] featureVector;	// Old feature vector.
+    public SharedWeightStore sharedWeights;	// Weights shared with other processes, null if not sharing.
+    public Double[] episodeStartWeights;	// Weights at the start of the episode, to find this episode's change.
 
     /**
      * These variables are set for you according to the assignment definition. You can change them,
@@ -107,11 +135,36 @@ public class RLAgent extends Agent {
                 weights[i] = random.nextDouble() * 2 - 1;
             }
         }
+        
+        boolean shareWeights = false;
+        
+        if (args.length >= 3) {
+        	shareWeights = Boolean.parseBoolean(args[2]);
+        }
+        
+        if (shareWeights) {
+        	try {
+        		// Start from the shared weights if another process has already made progress.
+        		sharedWeights = new SharedWeightStore(new File("agent_weights/weights.bin"), weights);
+        		weights = sharedWeights.read();
+        		System.out.println("Sharing weights through agent_weights/weights.bin.");
+        	} catch(IOException ex) {
+        		System.err.println("Failed to open shared weights. Reason: " + ex.getMessage());
+        		sharedWeights = null;
+        	}
+        }
         // Initialize class variables.
         this.maxQValue = 0.0;
         this.cumulativeReward = 0.0;
-        this.averageCumulativeRewards = new LinkedList<Double>();
-        this.averageCumulativeRewards.add(0.0);
+        // Processes sharing weights run in the same directory, so each one needs its own learning curve.
+        String learningCurvePath = "agent_data/learning_curve.csv";
+        if (sharedWeights != null) {
+        	learningCurvePath = "agent_data/learning_curve_" + getProcessName() + ".csv";
+        }
+        this.learningCurveStats = new LearningCurveStats(new File(learningCurvePath));
+        this.targetAssigner = new TargetAssigner();
+        this.footmenMaxQValues = new HashMap<Integer, Double>();
+        this.templateRoles = new HashMap<Integer, Integer>();
     }
 
     /**
@@ -125,13 +178,12 @@ public class RLAgent extends Agent {
         
         for (Integer unitId : stateView.getUnitIds(playernum)) {
             Unit.UnitView unit = stateView.getUnit(unitId);
-            String unitName = unit.getTemplateView().getName().toLowerCase();
             
-            if (unitName.equals("footman")) {
+            if (getUnitRole(unit) == ROLE_FOOTMAN) {
                 myFootmen.add(unitId);
             } 
             else {
-                System.err.println("Unknown player unit type: " + unitName);
+                System.err.println("Unknown player unit type: " + unit.getTemplateView().getName());
             }
         }
         // Find all of the enemy units.
@@ -140,13 +192,12 @@ public class RLAgent extends Agent {
         
         for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
             Unit.UnitView unit = stateView.getUnit(unitId);
-            String unitName = unit.getTemplateView().getName().toLowerCase();
             
-            if (unitName.equals("footman")) {
+            if (getUnitRole(unit) == ROLE_FOOTMAN) {
                 enemyFootmen.add(unitId);
             } 
             else {
-                System.err.println("Unknown enemy unit type: " + unitName);
+                System.err.println("Unknown enemy unit type: " + unit.getTemplateView().getName());
             }
         }
         // Initialize all footmen with 0 initial reward.
@@ -155,6 +206,20 @@ public class RLAgent extends Agent {
         for (Integer id : myFootmen) {
         	footmenRewardMap.put(id, 0.0);
         }
+        // Last episode's prices are for different units.
+        targetAssigner.reset();
+        episodeKills = 0;
+        episodeDeaths = 0;
+        
+        // Pick up the progress of other processes, unless the weights are frozen for a testing phase.
+        if (sharedWeights != null && !freezeForEvaluation) {
+        	try {
+        		weights = sharedWeights.read();
+        	} catch(IOException ex) {
+        		System.err.println("Failed to read shared weights. Reason: " + ex.getMessage());
+        	}
+        }
+        episodeStartWeights = weights.clone();
 
         return middleStep(stateView, historyView);
     }
@@ -171,11 +236,17 @@ public class RLAgent extends Agent {
     	Map<Integer, Action> actionMap = new HashMap<Integer, Action>();
     	calculateFootmenRewards(stateView, historyView);	// Update the rewards for the new state.
     	
-    	if (significantEvent(stateView, historyView)) {    		    		
+    	if (significantEvent(stateView, historyView)) {
+    		// Choose targets for all footmen together so they don't overkill the same enemy.
+    		Map<Integer, Integer> targets = selectActions(stateView, historyView);
+    		
     		// Update the weights for each footman.
     		for (Integer id : myFootmen) {
-    			int enemyId = selectAction(stateView, historyView, id);
+    			int enemyId = targets.get(id);
     			
+    			if (footmenMaxQValues.containsKey(id)) {
+    				maxQValue = footmenMaxQValues.get(id);
+    			}
     			if (!freezeForEvaluation) {
         			updateWeights(	this.weights, 
 							calculateFeatureVector(stateView, historyView, id, enemyId), 
@@ -219,6 +290,20 @@ public class RLAgent extends Agent {
     	calculateFootmenRewards(stateView, historyView);
     	removeDeadUnits(stateView, historyView);
     	
+    	// Average the rewards of the footmen for this episode.
+    	double episodeReward = 0.0;
+    	for (Double reward : footmenRewardMap.values()) {
+    		episodeReward += reward;
+    	}
+    	episodeReward /= footmenRewardMap.size();
+    	boolean testingEpisode = freezeForEvaluation;	// Whether this episode was played with frozen weights.
+    	learningCurveStats.recordEpisode(testingEpisode, episodeReward, episodeKills, episodeDeaths);
+    	
+    	// A testing phase is the episodes played with frozen weights, both in the table and in the CSV.
+    	if (testingEpisode) {
+    		cumulativeReward += episodeReward;
+    	}
+    	
     	// Increment completed learning episodes.
     	if (!freezeForEvaluation && completedLearningEpisodes < 10) {
     		totalCompletedEpisodes++;
@@ -231,34 +316,50 @@ public class RLAgent extends Agent {
     	}
     	// Increment completed testing episode.
     	if (freezeForEvaluation && completedTestingEpisodes < 5) {
-    		completedTestingEpisodes++;    		
-    		
-    		// Update cumulative reward.
-    		double sum = 0.0;
-    		for (Double reward : footmenRewardMap.values()) {
-    			sum += reward;
-    		}
-    		cumulativeReward += (sum /= footmenRewardMap.size());
+    		completedTestingEpisodes++;
     	}
     	// Switch to learning if we've tested for 5 episodes.
     	else if (freezeForEvaluation) {
     		freezeForEvaluation = false;
     		completedTestingEpisodes = 0;
     		
-    		// Print test results after each testing phase is completed.
-    		averageCumulativeRewards.add(cumulativeReward / 5);
-    		printTestData(averageCumulativeRewards);
+    		// Print the test result of this testing phase. The rest of the curve was printed by earlier phases.
+    		if (completedTestPhases == 0) {
+    			printTestHeader();
+    		}
+    		printTestRow(totalCompletedEpisodes, cumulativeReward / 5);
+    		completedTestPhases++;
+    		learningCurveStats.endTestPhase();
     		cumulativeReward = 0.0;
     	}
 
     	// We have finished the session.
     	if (totalCompletedEpisodes > numEpisodes) {
-    		System.out.println("Complete.");    		
+    		System.out.println("Complete.");
+    		learningCurveStats.close();
+    		
+    		if (sharedWeights != null) {
+    			if (!testingEpisode) {
+    				pushSharedWeights();
+    			}
+    			// Several processes write the text file, so only ever replace it with a complete snapshot.
+    			sharedWeights.exportSnapshot(new File("agent_weights/weights.txt"));
+    			sharedWeights.close();
+    		}
     		System.exit(0);
     	}
 
-        // Save the weights
-        saveWeights(weights);
+    	if (sharedWeights != null) {
+    		// Testing episodes don't change the weights, so there is nothing to push. The text file is only
+    		// exported when the run completes.
+    		if (!testingEpisode) {
+    			pushSharedWeights();
+    		}
+    	}
+    	else {
+    		// Save the weights
+    		saveWeights(weights);
+    	}
     }
 
     /**
@@ -332,19 +433,7 @@ public class RLAgent extends Agent {
     		}
     		// We are testing the policy.
     		else if (freezeForEvaluation && random.nextDouble() < epsilon) {
-    			int selectedEnemyId = enemyFootmen.get(0);    			
-    				
-    			// Loop through all enemies and choose the one that maximizes the Q Value.
-    			for (int i = 0; i < enemyFootmen.size(); i++) {
-    				int tempEnemyId = enemyFootmen.get(i);
-    				double tempQValue = calcQValue(stateView, historyView, attackerId, tempEnemyId);
-    				
-    				if (tempQValue > maxQValue) {
-    					selectedEnemyId = tempEnemyId;
-    				}
-    			}
-    			// Return the selected ID.
-    			return selectedEnemyId;
+    			return selectExploratoryAction(stateView, historyView, attackerId);
     		}
     		// Choose the action that maximizes the Q value.
     		else {
@@ -369,6 +458,95 @@ public class RLAgent extends Agent {
     	return -1;
     }
 
+    /**
+     * The exploration branch of selectAction. Picks the last enemy whose Q value beats the current
+     * maxQValue, without updating maxQValue.
+     *
+     * @param stateView Current state of the game
+     * @param historyView The entire history of this episode
+     * @param attackerId The footman that will be attacking
+     * @return The enemy footman ID this unit should attack
+     */
+    private int selectExploratoryAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    	
+    	int selectedEnemyId = enemyFootmen.get(0);
+    	
+    	// Loop through all enemies and choose the one that maximizes the Q Value.
+    	for (int i = 0; i < enemyFootmen.size(); i++) {
+    		int tempEnemyId = enemyFootmen.get(i);
+    		double tempQValue = calcQValue(stateView, historyView, attackerId, tempEnemyId);
+    		
+    		if (tempQValue > maxQValue) {
+    			selectedEnemyId = tempEnemyId;
+    		}
+    	}
+    	// Return the selected ID.
+    	return selectedEnemyId;
+    }
+
+    /**
+     * Select the enemy that each footman should attack. Rather than every footman taking its own
+     * argmax, the Q values of all footman/enemy pairs are handed to the TargetAssigner, which finds
+     * the assignment with the best total Q value while limiting how many footmen share a target.
+     * Exploration is the same as in selectAction: only while testing, with probability epsilon,
+     * a footman takes selectExploratoryAction instead of its assigned target.
+     *
+     * @param stateView Current state of the game
+     * @param historyView The entire history of this episode
+     * @return Maps each of myFootmen to the enemy footman ID it should attack
+     */
+    public Map<Integer, Integer> selectActions(State.StateView stateView, History.HistoryView historyView) {
+    	
+    	Map<Integer, Integer> targets = new HashMap<Integer, Integer>();
+    	footmenMaxQValues.clear();
+    	
+    	// It's the first turn or there is nothing to attack, so there are no Q values to compare.
+    	if (stateView.getTurnNumber() - 1 < 0 || enemyFootmen.isEmpty()) {
+    		for (Integer id : myFootmen) {
+    			targets.put(id, selectAction(stateView, historyView, id));
+    		}
+    		return targets;
+    	}
+    	// Build the footmen x enemies Q matrix.
+    	double[][] qValues = new double[myFootmen.size()][enemyFootmen.size()];
+    	double[] maxQValues = new double[myFootmen.size()];
+    	
+    	for (int i = 0; i < myFootmen.size(); i++) {
+    		maxQValues[i] = Double.NEGATIVE_INFINITY;
+    		
+    		for (int j = 0; j < enemyFootmen.size(); j++) {
+    			qValues[i][j] = calcQValue(stateView, historyView, myFootmen.get(i), enemyFootmen.get(j));
+    			maxQValues[i] = Math.max(maxQValues[i], qValues[i][j]);
+    		}
+    	}
+    	// Allow focus fire, but not more attackers than it takes to kill an enemy.
+    	int[] capacities = new int[enemyFootmen.size()];
+    	UnitView attacker = stateView.getUnit(myFootmen.get(0));
+    	
+    	for (int j = 0; j < enemyFootmen.size(); j++) {
+    		capacities[j] = getAttackerCapacity(attacker, stateView.getUnit(enemyFootmen.get(j)));
+    	}
+    	int[] assignment = targetAssigner.assign(qValues, myFootmen, enemyFootmen, capacities);
+    	
+    	for (int i = 0; i < myFootmen.size(); i++) {
+    		int selectedEnemyId;
+    		
+    		// We are testing the policy.
+    		if (freezeForEvaluation && random.nextDouble() < epsilon) {
+    			selectedEnemyId = selectExploratoryAction(stateView, historyView, myFootmen.get(i));
+    		}
+    		// Take the jointly assigned target, keeping the best Q value as selectAction would.
+    		else {
+    			selectedEnemyId = enemyFootmen.get(assignment[i]);
+    			maxQValue = maxQValues[i];
+    			footmenMaxQValues.put(myFootmen.get(i), maxQValues[i]);
+    		}
+    		targets.put(myFootmen.get(i), selectedEnemyId);
+    	}
+    	
+    	return targets;
+    }
+
     /**
      * Given the current state and the footman in question calculate the reward received on the last turn.
      * @param stateView The current state of the game.
@@ -582,6 +760,24 @@ public class RLAgent extends Agent {
     	return false;
     }
     
+    /**
+     * Helper method that finds how many footmen are worth sending at an enemy: the number of hits it takes to
+     * kill it, capped at MAX_ATTACKERS. Any more attackers would be overkill.
+     * @param attacker One of the footmen, used for its attack strength.
+     * @param defender The enemy.
+     * @return The most footmen that should attack the enemy.
+     */
+    private int getAttackerCapacity(UnitView attacker, UnitView defender) {
+    	
+    	if (attacker == null || defender == null) return 1;
+    	
+    	int damage = Math.max(1, attacker.getTemplateView().getBasicAttack() - defender.getTemplateView().getArmor())
+    			+ attacker.getTemplateView().getPiercingAttack();
+    	int hitsToKill = (defender.getHP() + damage - 1) / damage;
+    	
+    	return Math.max(1, Math.min(MAX_ATTACKERS, hitsToKill));
+    }
+    
     /**
      * Helper method that calculates and updates the rewards for all footmen for a given StateView and HistoryView.
      * @param stateView
@@ -609,10 +805,12 @@ public class RLAgent extends Agent {
 			// Remove any of the player's units that were killed in the last turn.
 			if (controllerId == playernum && myFootmen.contains(deadUnitID)) {				
 				myFootmen.remove(deadUnitID);
+				episodeDeaths++;
 			}
 			// Remove any of the enemy's units that were killed in the last turn.
 			else if (controllerId == ENEMY_PLAYERNUM && enemyFootmen.contains(deadUnitID)) {				
 				enemyFootmen.remove(deadUnitID);
+				episodeKills++;
 			}
 			// An unidentified unit was killed and we don't know what to do with it.
 			else {
@@ -622,6 +820,79 @@ public class RLAgent extends Agent {
 		}
     }
     
+    /**
+     * Helper method that adds this episode's change of the weights to the shared weights, on top of whatever
+     * the other processes did, and continues from the result.
+     */
+    private void pushSharedWeights() {
+    	
+    	double[] deltas = new double[weights.length];
+    	for (int i = 0; i < weights.length; i++) {
+    		deltas[i] = weights[i] - episodeStartWeights[i];
+    	}
+    	try {
+    		weights = sharedWeights.applyDeltas(deltas);
+    		episodeStartWeights = weights.clone();
+    	} catch(IOException ex) {
+    		System.err.println("Failed to update shared weights. Reason: " + ex.getMessage());
+    	}
+    }
+    
+    /**
+     * Helper method that names this process for per-process output files.
+     * @return The process ID, or a random number if the JVM doesn't report it.
+     */
+    private static String getProcessName() {
+    	
+    	// The runtime name is "pid@hostname" on the common JVMs.
+    	String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+    	int at = runtimeName.indexOf('@');
+    	
+    	if (at > 0) {
+    		return runtimeName.substring(0, at);
+    	}
+    	return Long.toString(Math.abs(new Random().nextLong()));
+    }
+    
+    /**
+     * Helper method that classifies a unit by its template. Every episode is created from the same map,
+     * so each template's name only has to be compared the first time the template is seen. After that
+     * the role is looked up by the integer template ID.
+     * @param unit
+     * @return One of the ROLE_ constants.
+     */
+    private int getUnitRole(Unit.UnitView unit) {
+    	
+    	Template.TemplateView template = unit.getTemplateView();
+    	Integer role = templateRoles.get(template.getID());
+    	
+    	// First time we've seen this template.
+    	if (role == null) {
+    		role = classifyTemplate(template.getName());
+    		templateRoles.put(template.getID(), role);
+    	}
+    	return role;
+    }
+    
+    /**
+     * Adds roles of unit templates that are already known, such as the table ScenarioCache precompiles
+     * for a map, so those templates never have to be classified by name.
+     * @param roles Maps unit template ID to one of the ROLE_ constants.
+     */
+    public void seedTemplateRoles(Map<Integer, Integer> roles) {
+    	templateRoles.putAll(roles);
+    }
+    
+    /**
+     * Helper method that gives the role of a unit template. Also used by ScenarioCache to precompile
+     * the roles of a map.
+     * @param templateName
+     * @return One of the ROLE_ constants.
+     */
+    public static int classifyTemplate(String templateName) {
+    	return templateName.equalsIgnoreCase("footman") ? ROLE_FOOTMAN : ROLE_UNKNOWN;
+    }
+    
     /**
      * Calculates the Chebyshev distance between two coordinates (x1, y1), (x2, y2).
      * @param x1
@@ -635,6 +906,37 @@ public class RLAgent extends Agent {
     	return Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1));
     }
     
+    /**
+     * Prints the header and the initial "0  0.00" row of the table printed by printTestData. printTestData
+     * itself can't be used, since it ends the table with a blank line.
+     */
+    private void printTestHeader() {
+    	
+    	System.out.println("");
+    	System.out.println("Games Played      Average Cumulative Reward");
+    	System.out.println("-------------     -------------------------");
+    	printTestRow(0, 0.0);
+    }
+    
+    /**
+     * Prints a single row of the table printed by printTestData, so the table can be built up one testing
+     * phase at a time instead of being reprinted in full.
+     * @param gamesPlayed Number of learning episodes played before this testing phase.
+     * @param averageReward Average cumulative reward of this testing phase.
+     */
+    private void printTestRow(int gamesPlayed, double averageReward) {
+    	
+    	String games = Integer.toString(gamesPlayed);
+    	String reward = String.format("%.2f", averageReward);
+    	
+    	int numSpaces = "-------------     ".length() - games.length();
+    	StringBuffer spaceBuffer = new StringBuffer(numSpaces);
+    	for (int j = 0; j < numSpaces; j++) {
+    		spaceBuffer.append(" ");
+    	}
+    	System.out.println(games + spaceBuffer.toString() + reward);
+    }
+    
     /*
      * ///////////////////////////////////////////////////////////////////////////////////////
      * DON'T MODIFY ANTHING BEYOND THIS POINT.
@@ -0,0 +1,398 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.RawStateCreator;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.Template;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+import edu.cwru.sepia.experiment.Runner;
+import edu.cwru.sepia.util.config.xml.XmlAgentParameters;
+import edu.cwru.sepia.util.config.xml.XmlConfiguration;
+import edu.cwru.sepia.util.config.xml.XmlKeyValuePair;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Launches a SEPIA configuration like edu.cwru.sepia.Main2, but from a precompiled binary cache
+ * instead of the config and map XML. Compile the agent into bin (the checked in bin is built with
+ * -source 7 -target 7) and run it the same way as Main2:
+ *
+ *     javac -cp lib/Sepia.jar -d bin src/edu/cwru/sepia/agent/*.java
+ *     java -cp lib/Sepia.jar:bin:combat_agent edu.cwru.sepia.agent.ScenarioCache data/10fv10fConfig.xml
+ *
+ * The cache lives in agent_data/scenario_cache and is keyed by a SHA-1 hash of the config XML
+ * and of the map XML it names. It holds everything Main2 gets out of the XML (runner, agents,
+ * model and runner parameters), the serialized initial state, and a table of unit template ID to
+ * RLAgent role. On a hit no XML is parsed and JAXB is never loaded. On a miss the XML is parsed
+ * once and the cache is rebuilt. Like Main2, building the cache needs a Java runtime that ships
+ * JAXB (Java 7 or 8). JAXB is looked up at run time, so the agent still compiles without it.
+ * @course EECS 391: Introduction to Artificial Intelligence
+ * @project PA4
+ * @author Timothy Sesler
+ * @author Adam Boe
+ * @date 23 April 2015
+ *
+ */
+public class ScenarioCache {
+
+	public static final int MAGIC = 0x52534331;	// "RSC1"
+	public static final int FORMAT_VERSION = 2;
+
+	public static final String CACHE_DIRECTORY = "agent_data/scenario_cache";
+
+	// Type tags of configuration values.
+	private static final byte TYPE_BOOLEAN = 'B';
+	private static final byte TYPE_INTEGER = 'I';
+	private static final byte TYPE_DOUBLE = 'D';
+	private static final byte TYPE_STRING = 'S';
+
+	// Contents of the cache.
+	private byte[] configHash;
+	private String mapPath;
+	private byte[] mapHash;
+	private String runnerClass;
+	private Map<String, Object> configuration = new LinkedHashMap<String, Object>();
+	private List<String> agentClasses = new ArrayList<String>();
+	private List<Integer> agentIds = new ArrayList<Integer>();
+	private List<String[]> agentArguments = new ArrayList<String[]>();
+	private Map<Integer, Integer> templateRoles = new HashMap<Integer, Integer>();
+	private byte[] stateData;
+
+	public static void main(String[] args) {
+
+		if (args.length < 1) {
+			System.out.println("You must specify a configuration file.");
+			return;
+		}
+		File configFile = new File(args[0]);
+		File cacheFile = new File(CACHE_DIRECTORY, configFile.getName() + ".bin");
+
+		ScenarioCache cache = load(cacheFile, configFile);
+
+		if (cache == null) {
+			try {
+				cache = build(configFile);
+			} catch(Exception ex) {
+				System.err.println("Unable to read scenario " + configFile + ". Reason: " + ex);
+				return;
+			}
+			cache.save(cacheFile);
+			System.out.println("Built scenario cache " + cacheFile);
+		}
+		else {
+			System.out.println("Loaded scenario cache " + cacheFile);
+		}
+
+		try {
+			cache.createRunner().run();
+		} catch(Exception ex) {
+			System.err.println("Unable to start scenario " + configFile + ". Reason: " + ex);
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the cache for a configuration.
+	 * @param cacheFile The cache file
+	 * @param configFile The configuration XML the cache was built from
+	 * @return The cache, or null if there is none, the config or map XML changed since it was built, or it
+	 * was built by a different Sepia.jar or RLAgent.classifyTemplate.
+	 */
+	public static ScenarioCache load(File cacheFile, File configFile) {
+
+		if (!cacheFile.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != RLAgent.ROLE_VERSION) {
+				return null;
+			}
+			ScenarioCache cache = new ScenarioCache();
+
+			// Check that neither XML file changed.
+			cache.configHash = readBytes(in);
+			if (!Arrays.equals(cache.configHash, hash(configFile))) {
+				return null;
+			}
+			cache.mapPath = in.readUTF();
+			cache.mapHash = readBytes(in);
+			if (!Arrays.equals(cache.mapHash, hash(new File(cache.mapPath)))) {
+				return null;
+			}
+
+			cache.runnerClass = in.readUTF();
+
+			int numSettings = in.readInt();
+			for (int i = 0; i < numSettings; i++) {
+				String key = in.readUTF();
+				byte type = in.readByte();
+
+				if (type == TYPE_BOOLEAN) {
+					cache.configuration.put(key, in.readBoolean());
+				}
+				else if (type == TYPE_INTEGER) {
+					cache.configuration.put(key, in.readInt());
+				}
+				else if (type == TYPE_DOUBLE) {
+					cache.configuration.put(key, in.readDouble());
+				}
+				else {
+					cache.configuration.put(key, in.readUTF());
+				}
+			}
+
+			int numAgents = in.readInt();
+			for (int i = 0; i < numAgents; i++) {
+				cache.agentClasses.add(in.readUTF());
+				cache.agentIds.add(in.readInt());
+
+				String[] arguments = new String[in.readInt()];
+				for (int j = 0; j < arguments.length; j++) {
+					arguments[j] = in.readUTF();
+				}
+				cache.agentArguments.add(arguments);
+			}
+
+			int numTemplates = in.readInt();
+			for (int i = 0; i < numTemplates; i++) {
+				cache.templateRoles.put(in.readInt(), in.readInt());
+			}
+
+			cache.stateData = readBytes(in);
+
+			// The runner deserializes the state at the start of every episode. Make sure this Sepia.jar can
+			// read it now, while the cache can still be rebuilt.
+			ObjectInputStream stateIn = new ObjectInputStream(new ByteArrayInputStream(cache.stateData));
+			stateIn.readObject();
+			stateIn.close();
+
+			return cache;
+		} catch(IOException | ClassNotFoundException ex) {
+			System.err.println("Ignoring unreadable scenario cache " + cacheFile + ". Reason: " + ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a configuration and its map the way Main2 does.
+	 * @param configFile The configuration XML
+	 * @return The parsed scenario
+	 * @throws Exception If either XML file can't be read or JAXB is not available
+	 */
+	public static ScenarioCache build(File configFile) throws Exception {
+
+		ScenarioCache cache = new ScenarioCache();
+
+		// Hash the files before parsing them, so a later edit can only make the cache look out of date.
+		cache.configHash = hash(configFile);
+		XmlConfiguration xmlConfiguration = (XmlConfiguration)unmarshal(XmlConfiguration.class, configFile);
+		cache.mapPath = xmlConfiguration.getMap();
+		cache.mapHash = hash(new File(cache.mapPath));
+		XmlState xmlState = (XmlState)unmarshal(XmlState.class, new File(cache.mapPath));
+		State state = new XmlStateCreator(xmlState).createState();
+
+		cache.runnerClass = xmlConfiguration.getRunner().getRunnerClass();
+
+		// Model parameters, then runner parameters, as in Main2.
+		cache.configuration.put(ConfigurationValues.MODEL_CONQUEST.key, xmlConfiguration.getModelParameters().isConquest());
+		cache.configuration.put(ConfigurationValues.MODEL_MIDAS.key, xmlConfiguration.getModelParameters().isMidas());
+		cache.configuration.put(ConfigurationValues.MODEL_MANIFEST_DESTINY.key, xmlConfiguration.getModelParameters().isManifestDestiny());
+		cache.configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, xmlConfiguration.getModelParameters().getTimeLimit());
+
+		for (XmlKeyValuePair requirement : xmlConfiguration.getModelParameters().getRequirement()) {
+			cache.configuration.put(requirement.getName(), requirement.getValue());
+		}
+		for (XmlKeyValuePair parameter : xmlConfiguration.getRunner().getParameter()) {
+			cache.configuration.put(parameter.getName(), parameter.getValue());
+		}
+
+		for (XmlAgentParameters player : xmlConfiguration.getPlayer()) {
+			cache.agentClasses.add(player.getAgentClass().getClassName());
+			cache.agentIds.add(player.getId());
+			cache.agentArguments.add(player.getAgentClass().getArgument().toArray(new String[0]));
+		}
+
+		// Classify every unit template once, so agents don't have to compare names.
+		for (Integer player : state.getPlayers()) {
+			for (Template<?> template : state.getTemplates(player).values()) {
+				cache.templateRoles.put(template.ID, RLAgent.classifyTemplate(template.getName()));
+			}
+		}
+
+		ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(stateBytes);
+		out.writeObject(state);
+		out.close();
+		cache.stateData = stateBytes.toByteArray();
+
+		return cache;
+	}
+
+	/**
+	 * Writes the cache. It is written to a temporary file first and then moved over the target, so
+	 * other processes never read a partial cache.
+	 * @param cacheFile The cache file
+	 */
+	public void save(File cacheFile) {
+
+		// create the directories if they do not already exist
+		cacheFile.getAbsoluteFile().getParentFile().mkdirs();
+
+		try {
+			File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(RLAgent.ROLE_VERSION);
+
+				writeBytes(out, configHash);
+				out.writeUTF(mapPath);
+				writeBytes(out, mapHash);
+
+				out.writeUTF(runnerClass);
+
+				out.writeInt(configuration.size());
+				for (Map.Entry<String, Object> setting : configuration.entrySet()) {
+					out.writeUTF(setting.getKey());
+					Object value = setting.getValue();
+
+					if (value instanceof Boolean) {
+						out.writeByte(TYPE_BOOLEAN);
+						out.writeBoolean((Boolean)value);
+					}
+					else if (value instanceof Integer) {
+						out.writeByte(TYPE_INTEGER);
+						out.writeInt((Integer)value);
+					}
+					else if (value instanceof Double) {
+						out.writeByte(TYPE_DOUBLE);
+						out.writeDouble((Double)value);
+					}
+					else {
+						out.writeByte(TYPE_STRING);
+						out.writeUTF(String.valueOf(value));
+					}
+				}
+
+				out.writeInt(agentClasses.size());
+				for (int i = 0; i < agentClasses.size(); i++) {
+					out.writeUTF(agentClasses.get(i));
+					out.writeInt(agentIds.get(i));
+					out.writeInt(agentArguments.get(i).length);
+					for (String argument : agentArguments.get(i)) {
+						out.writeUTF(argument);
+					}
+				}
+
+				out.writeInt(templateRoles.size());
+				for (Map.Entry<Integer, Integer> templateRole : templateRoles.entrySet()) {
+					out.writeInt(templateRole.getKey());
+					out.writeInt(templateRole.getValue());
+				}
+
+				writeBytes(out, stateData);
+			}
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ex) {
+			System.err.println("Failed to write scenario cache. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return The template ID to role table of this scenario.
+	 */
+	public Map<Integer, Integer> getTemplateRoles() {
+		return templateRoles;
+	}
+
+	/**
+	 * Creates the agents and the runner the way Main2 does. RLAgents are handed the precompiled template roles.
+	 * @return The runner, ready to run.
+	 * @throws Exception If an agent or the runner can't be instantiated.
+	 */
+	public Runner createRunner() throws Exception {
+
+		Configuration runnerConfiguration = new Configuration();
+		for (Map.Entry<String, Object> setting : configuration.entrySet()) {
+			runnerConfiguration.put(setting.getKey(), setting.getValue());
+		}
+
+		Agent[] agents = new Agent[agentClasses.size()];
+		for (int i = 0; i < agents.length; i++) {
+			Class<?> agentClass = Class.forName(agentClasses.get(i));
+
+			// Like Main2, fall back to the ID only constructor if the agent can't take the arguments.
+			try {
+				Constructor<?> constructor = agentClass.getConstructor(int.class, String[].class);
+				agents[i] = (Agent)constructor.newInstance(agentIds.get(i), agentArguments.get(i));
+			} catch(Exception ex) {
+				Constructor<?> constructor = agentClass.getConstructor(int.class);
+				agents[i] = (Agent)constructor.newInstance(agentIds.get(i));
+			}
+
+			if (agents[i] instanceof RLAgent) {
+				((RLAgent)agents[i]).seedTemplateRoles(templateRoles);
+			}
+		}
+
+		StateCreator stateCreator = new RawStateCreator(stateData);
+		Constructor<?> constructor = Class.forName(runnerClass).getConstructor(Configuration.class, StateCreator.class, Agent[].class);
+
+		return (Runner)constructor.newInstance(runnerConfiguration, stateCreator, agents);
+	}
+
+	/**
+	 * Reads an XML file with JAXB, as Main2 does. JAXB is looked up at run time because Java 9 and later
+	 * no longer ship it.
+	 * @param type The generated class of the document
+	 * @param file The XML file
+	 * @return The parsed document
+	 * @throws Exception If the file can't be parsed or JAXB is not available
+	 */
+	private static Object unmarshal(Class<?> type, File file) throws Exception {
+
+		Class<?> contextClass = Class.forName("javax.xml.bind.JAXBContext");
+		Class<?> unmarshallerClass = Class.forName("javax.xml.bind.Unmarshaller");
+
+		Object context = contextClass.getMethod("newInstance", Class[].class).invoke(null, (Object)new Class<?>[] {type});
+		Object unmarshaller = contextClass.getMethod("createUnmarshaller").invoke(context);
+
+		return unmarshallerClass.getMethod("unmarshal", File.class).invoke(unmarshaller, file);
+	}
+
+	/**
+	 * @param file
+	 * @return The SHA-1 hash of the file's contents.
+	 * @throws IOException If the file can't be read
+	 */
+	private static byte[] hash(File file) throws IOException {
+
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(file.toPath()));
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IOException("SHA-1 is not available", ex);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
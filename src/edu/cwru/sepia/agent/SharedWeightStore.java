@@ -0,0 +1,213 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.Locale;
+
+/**
+ * A weight vector shared between several RLAgent processes through a memory-mapped file.
+ *
+ * The file starts with a 64 byte header followed by two banks of 8 byte aligned double slots.
+ * The version word in the header counts the published updates and says which bank holds the
+ * current weights. Writers take an exclusive file lock, write the new weights into the other bank
+ * and then bump the version word, so the published bank is never partially written, even if a
+ * process dies mid-update (the operating system drops its lock). Readers take the file lock in
+ * shared mode, so any number of processes can read at once and only wait while an update is
+ * being written.
+ * @course EECS 391: Introduction to Artificial Intelligence
+ * @project PA4
+ * @author Timothy Sesler
+ * @author Adam Boe
+ * @date 23 April 2015
+ *
+ */
+public class SharedWeightStore {
+
+	public static final int MAGIC = 0x524c5731;	// "RLW1"
+	public static final int LAYOUT_VERSION = 2;
+
+	// Header layout. Every field is aligned to its size.
+	private static final int MAGIC_OFFSET = 0;
+	private static final int LAYOUT_VERSION_OFFSET = 4;
+	private static final int NUM_WEIGHTS_OFFSET = 8;
+	private static final int VERSION_OFFSET = 16;	// Number of updates applied by all processes. version % 2 is the current bank.
+	private static final int HEADER_SIZE = 64;
+
+	private final int numWeights;
+	private final int bankSize;	// Bytes per bank, rounded up to a cache line.
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Opens the weight store at the given path, creating it with the initial weights if it does not
+	 * exist yet. If another process already created it, its weights are kept.
+	 * @param path The file backing the store
+	 * @param initialWeights Weights to start with if the store is new
+	 * @throws IOException If the file can't be mapped or holds a different number of weights
+	 */
+	public SharedWeightStore(File path, Double[] initialWeights) throws IOException {
+
+		this.numWeights = initialWeights.length;
+		this.bankSize = ((numWeights * 8 + 63) / 64) * 64;
+
+		// create the directories if they do not already exist
+		path.getAbsoluteFile().getParentFile().mkdirs();
+
+		this.channel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		// Only one process may lay out a new file.
+		FileLock lock = null;
+		try {
+			lock = channel.lock();
+			long size = HEADER_SIZE + 2L * bankSize;
+
+			if (channel.size() != 0 && channel.size() != size) {
+				throw new IOException("Weight store " + path + " has size " + channel.size() + ", expected " + size);
+			}
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.nativeOrder());
+
+			if (buffer.getInt(MAGIC_OFFSET) == 0) {
+				// New store. Fill both banks, then write the magic number last.
+				for (int bank = 0; bank < 2; bank++) {
+					for (int i = 0; i < numWeights; i++) {
+						buffer.putDouble(slotOffset(bank, i), initialWeights[i]);
+					}
+				}
+				buffer.putInt(LAYOUT_VERSION_OFFSET, LAYOUT_VERSION);
+				buffer.putInt(NUM_WEIGHTS_OFFSET, numWeights);
+				buffer.putLong(VERSION_OFFSET, 0L);
+				buffer.putInt(MAGIC_OFFSET, MAGIC);
+				buffer.force();
+			}
+			else if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(LAYOUT_VERSION_OFFSET) != LAYOUT_VERSION) {
+				throw new IOException("Weight store " + path + " has an unknown format");
+			}
+			else if (buffer.getInt(NUM_WEIGHTS_OFFSET) != numWeights) {
+				throw new IOException("Weight store " + path + " holds " + buffer.getInt(NUM_WEIGHTS_OFFSET) + " weights, expected " + numWeights);
+			}
+			lock.release();
+		} catch(IOException ex) {
+			// Closing the channel also drops the lock.
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reads a consistent copy of the current weights. Other readers are not blocked.
+	 * @return The current weights
+	 * @throws IOException If the file lock could not be taken
+	 */
+	public Double[] read() throws IOException {
+
+		Double[] weights = new Double[numWeights];
+		FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+
+		try {
+			int bank = currentBank(buffer.getLong(VERSION_OFFSET));
+
+			for (int i = 0; i < numWeights; i++) {
+				weights[i] = buffer.getDouble(slotOffset(bank, i));
+			}
+		} finally {
+			lock.release();
+		}
+		return weights;
+	}
+
+	/**
+	 * Adds the given change to the shared weights. Changes from other processes made since this
+	 * process last read the weights are kept.
+	 * @param deltas Change of each weight
+	 * @return The weights after the change
+	 * @throws IOException If the file lock could not be taken
+	 */
+	public Double[] applyDeltas(double[] deltas) throws IOException {
+
+		Double[] weights = new Double[numWeights];
+		FileLock lock = channel.lock();
+
+		try {
+			long version = buffer.getLong(VERSION_OFFSET);
+			int bank = currentBank(version);
+
+			for (int i = 0; i < numWeights; i++) {
+				weights[i] = buffer.getDouble(slotOffset(bank, i)) + deltas[i];
+				buffer.putDouble(slotOffset(1 - bank, i), weights[i]);
+			}
+			// Publish the other bank.
+			buffer.putLong(VERSION_OFFSET, version + 1);
+		} finally {
+			lock.release();
+		}
+		return weights;
+	}
+
+	/**
+	 * @return Number of updates applied to the store by all processes.
+	 * @throws IOException If the file lock could not be taken
+	 */
+	public long getVersion() throws IOException {
+
+		FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+
+		try {
+			return buffer.getLong(VERSION_OFFSET);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Writes a consistent snapshot of the weights in the weights.txt format. The snapshot is written
+	 * to a temporary file first and then moved over the target, so the target always holds a
+	 * complete set of weights.
+	 * @param path The text file to write
+	 */
+	public void exportSnapshot(File path) {
+
+		// create the directories if they do not already exist
+		path.getAbsoluteFile().getParentFile().mkdirs();
+
+		try {
+			Double[] weights = read();
+			File tempPath = File.createTempFile(path.getName(), ".tmp", path.getAbsoluteFile().getParentFile());
+			BufferedWriter writer = new BufferedWriter(new FileWriter(tempPath, false));
+
+			for (double weight : weights) {
+				writer.write(String.format(Locale.ROOT, "%f\n", weight));
+			}
+			writer.flush();
+			writer.close();
+
+			Files.move(tempPath.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ex) {
+			System.err.println("Failed to export shared weights to file. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Releases the file. The mapping itself stays valid until it is garbage collected.
+	 */
+	public void close() {
+
+		try {
+			channel.close();
+		} catch(IOException ex) {
+			System.err.println("Failed to close shared weights file. Reason: " + ex.getMessage());
+		}
+	}
+
+	private int currentBank(long version) {
+		return (int)(version & 1);
+	}
+
+	private int slotOffset(int bank, int index) {
+		return HEADER_SIZE + bank * bankSize + index * 8;
+	}
+}
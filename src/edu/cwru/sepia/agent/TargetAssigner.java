@@ -0,0 +1,431 @@
+package edu.cwru.sepia.agent;
+
+import java.util.*;
+
+/**
+ * Solves the joint footman-to-enemy assignment for a single turn. Given the full footmen x enemies
+ * Q matrix it finds the assignment that maximizes the total Q value while allowing at most
+ * capacity footmen on each enemy. The capacities are chosen by the caller, so focus fire is allowed
+ * up to the point where extra attackers would only be overkill.
+ *
+ * The solver is an auction with epsilon scaling. Each enemy is split into capacity slots and
+ * footmen bid on slots until every footman holds one. A bidder only ever wants the cheapest slot of
+ * an enemy, so the bid search runs over enemies rather than slots. There are usually more slots than
+ * footmen, so a reverse step then lets each spare slot that is dearer than every held slot lower its
+ * price and bid for a footman, which keeps the result optimal without padding the auction.
+ *
+ * The slot prices and the footman holding each slot are kept between turns (keyed by enemy and
+ * footman ID) and the next solve starts from them. A footman whose last target is still within
+ * epsilon of its best choice keeps it and only the others bid, since the Q matrix changes very
+ * little from one significant event to the next.
+ * @course EECS 391: Introduction to Artificial Intelligence
+ * @project PA4
+ * @author Timothy Sesler
+ * @author Adam Boe
+ * @date 23 April 2015
+ *
+ */
+public class TargetAssigner {
+
+	/**
+	 * Final bidding increment relative to the spread of the Q matrix. The total Q value of the
+	 * solution is within (number of footmen * epsilon) of the optimum.
+	 */
+	public static final double FINAL_EPSILON_FRACTION = 1e-4;
+
+	/**
+	 * Factor the bidding increment is divided by between scaling phases.
+	 */
+	public static final double EPSILON_SCALING_FACTOR = 5.0;
+
+	private Map<Integer, double[]> enemyPrices;	// Maps enemy ID to the prices of its slots from the last solve.
+	private Map<Integer, int[]> enemyHolders;	// Maps enemy ID to the footman ID holding each of its slots from the last solve, or -1.
+
+	// Slot layout of the current solve. The slots of enemy j are firstSlot[j] up to firstSlot[j + 1].
+	private int[] firstSlot;
+	private int[] enemyOfSlot;
+
+	// Cheapest and second cheapest slot price of each enemy, kept up to date during an auction.
+	private int[] cheapestSlot;
+	private double[] cheapestPrice;
+	private double[] secondCheapestPrice;
+
+	// Assignment of the current solve.
+	private int[] slotOfFootman;	// Slot held by each footman, or -1.
+	private int[] footmanOfSlot;	// Footman holding each slot, or -1.
+	private double[] profits;	// Q value minus price of the slot each footman holds.
+
+	public TargetAssigner() {
+		this.enemyPrices = new HashMap<Integer, double[]>();
+		this.enemyHolders = new HashMap<Integer, int[]>();
+	}
+
+	/**
+	 * Assigns every footman to an enemy, with the smallest capacity that fits all footmen.
+	 * @param qValues Q value of each footman (row) attacking each enemy (column)
+	 * @param footmanIds The footman ID of each row of qValues
+	 * @param enemyIds The enemy ID of each column of qValues
+	 * @return The index of the enemy column assigned to each footman row, or an empty array if there are no enemies.
+	 */
+	public int[] assign(double[][] qValues, List<Integer> footmanIds, List<Integer> enemyIds) {
+
+		int[] capacities = new int[enemyIds.size()];
+		Arrays.fill(capacities, 1);
+
+		return assign(qValues, footmanIds, enemyIds, capacities);
+	}
+
+	/**
+	 * Assigns every footman to an enemy.
+	 * @param qValues Q value of each footman (row) attacking each enemy (column)
+	 * @param footmanIds The footman ID of each row of qValues
+	 * @param enemyIds The enemy ID of each column of qValues
+	 * @param capacities The most footmen each enemy should be attacked by. If they add up to fewer than
+	 * the number of footmen, every capacity is raised by the same amount until they fit.
+	 * @return The index of the enemy column assigned to each footman row, or an empty array if there are no enemies.
+	 */
+	public int[] assign(double[][] qValues, List<Integer> footmanIds, List<Integer> enemyIds, int[] capacities) {
+
+		int numFootmen = qValues.length;
+		int numEnemies = enemyIds.size();
+
+		if (numFootmen == 0 || numEnemies == 0) {
+			return new int[0];
+		}
+		// Lay out the slots, making sure all footmen can be placed.
+		int totalCapacity = 0;
+
+		for (int j = 0; j < numEnemies; j++) {
+			totalCapacity += Math.max(capacities[j], 1);
+		}
+		int extraCapacity = Math.max(0, (numFootmen - totalCapacity + numEnemies - 1) / numEnemies);
+		firstSlot = new int[numEnemies + 1];
+
+		for (int j = 0; j < numEnemies; j++) {
+			firstSlot[j + 1] = firstSlot[j] + Math.max(capacities[j], 1) + extraCapacity;
+		}
+		int numSlots = firstSlot[numEnemies];
+		enemyOfSlot = new int[numSlots];
+
+		for (int j = 0; j < numEnemies; j++) {
+			Arrays.fill(enemyOfSlot, firstSlot[j], firstSlot[j + 1], j);
+		}
+
+		// Find the spread of the Q values to scale the bidding increments.
+		double minQValue = Double.POSITIVE_INFINITY;
+		double maxQValue = Double.NEGATIVE_INFINITY;
+
+		for (double[] row : qValues) {
+			for (double qValue : row) {
+				minQValue = Math.min(minQValue, qValue);
+				maxQValue = Math.max(maxQValue, qValue);
+			}
+		}
+		double spread = Math.max(maxQValue - minQValue, 1e-9);
+		double finalEpsilon = spread * FINAL_EPSILON_FRACTION;
+
+		// Warm start from last turn's prices and targets. Enemies that are new, or have a different capacity,
+		// start at 0 with no footmen.
+		double[] prices = new double[numSlots];
+		slotOfFootman = new int[numFootmen];
+		footmanOfSlot = new int[numSlots];
+		profits = new double[numFootmen];
+		Arrays.fill(slotOfFootman, -1);
+		Arrays.fill(footmanOfSlot, -1);
+
+		Map<Integer, Integer> rowOfFootman = new HashMap<Integer, Integer>();
+		for (int i = 0; i < numFootmen; i++) {
+			rowOfFootman.put(footmanIds.get(i), i);
+		}
+		boolean warmStart = false;
+
+		for (int j = 0; j < numEnemies; j++) {
+			double[] lastPrices = enemyPrices.get(enemyIds.get(j));
+
+			if (lastPrices != null && lastPrices.length == firstSlot[j + 1] - firstSlot[j]) {
+				System.arraycopy(lastPrices, 0, prices, firstSlot[j], lastPrices.length);
+				warmStart = true;
+				int[] lastHolders = enemyHolders.get(enemyIds.get(j));
+
+				for (int k = 0; k < lastHolders.length; k++) {
+					Integer footman = rowOfFootman.get(lastHolders[k]);
+
+					// Dead footmen are no longer in the rows.
+					if (footman != null && slotOfFootman[footman] < 0) {
+						slotOfFootman[footman] = firstSlot[j] + k;
+						footmanOfSlot[firstSlot[j] + k] = footman;
+					}
+				}
+			}
+		}
+		// Only relative prices matter, so keep them from drifting upward across turns.
+		normalizePrices(prices);
+
+		cheapestSlot = new int[numEnemies];
+		cheapestPrice = new double[numEnemies];
+		secondCheapestPrice = new double[numEnemies];
+
+		// A warm start is already close to equilibrium, so skip the coarse phases.
+		double epsilon = warmStart ? finalEpsilon * EPSILON_SCALING_FACTOR : spread / EPSILON_SCALING_FACTOR;
+
+		while (true) {
+			auction(qValues, prices, Math.max(epsilon, finalEpsilon));
+
+			if (epsilon <= finalEpsilon) {
+				break;
+			}
+			epsilon /= EPSILON_SCALING_FACTOR;
+		}
+		// Remember the prices and targets for the next turn.
+		enemyPrices.clear();
+		enemyHolders.clear();
+
+		for (int j = 0; j < numEnemies; j++) {
+			int[] holders = new int[firstSlot[j + 1] - firstSlot[j]];
+
+			for (int k = 0; k < holders.length; k++) {
+				int footman = footmanOfSlot[firstSlot[j] + k];
+				holders[k] = footman >= 0 ? footmanIds.get(footman) : -1;
+			}
+			enemyPrices.put(enemyIds.get(j), Arrays.copyOfRange(prices, firstSlot[j], firstSlot[j + 1]));
+			enemyHolders.put(enemyIds.get(j), holders);
+		}
+		// Convert slots back into enemy columns.
+		int[] assignment = new int[numFootmen];
+
+		for (int i = 0; i < numFootmen; i++) {
+			assignment[i] = enemyOfSlot[slotOfFootman[i]];
+		}
+
+		return assignment;
+	}
+
+	/**
+	 * Forgets the prices and targets from previous turns. Call this at the start of each episode.
+	 */
+	public void reset() {
+		enemyPrices.clear();
+		enemyHolders.clear();
+	}
+
+	/**
+	 * Runs a single auction phase with a fixed bidding increment. Footmen that already hold a slot keep it
+	 * if it is within epsilon of their best choice, the others bid until every footman holds a slot, and
+	 * then the spare slots bid for footmen.
+	 * @param qValues Q value of each footman attacking each enemy
+	 * @param prices Current slot prices, updated in place
+	 * @param epsilon The bidding increment
+	 */
+	private void auction(double[][] qValues, double[] prices, double epsilon) {
+
+		int numFootmen = qValues.length;
+		int numEnemies = cheapestSlot.length;
+
+		for (int j = 0; j < numEnemies; j++) {
+			updateCheapestSlots(j, prices);
+		}
+
+		// Queue of footmen that do not hold a slot yet.
+		int[] unassigned = new int[numFootmen];
+		int head = 0;
+		int size = 0;
+
+		for (int i = 0; i < numFootmen; i++) {
+			int slot = slotOfFootman[i];
+
+			if (slot >= 0) {
+				double profit = qValues[i][enemyOfSlot[slot]] - prices[slot];
+
+				if (profit >= getBestValue(qValues[i]) - epsilon) {
+					profits[i] = profit;
+					continue;
+				}
+				// Something else is now clearly better, so bid again.
+				footmanOfSlot[slot] = -1;
+				slotOfFootman[i] = -1;
+			}
+			unassigned[size++] = i;
+		}
+
+		while (size > 0) {
+			int footman = unassigned[head];
+			head = (head + 1) % numFootmen;
+			size--;
+
+			// Find the best enemy for this footman.
+			double[] row = qValues[footman];
+			int bestEnemy = -1;
+			double bestValue = Double.NEGATIVE_INFINITY;
+			double secondValue = Double.NEGATIVE_INFINITY;
+
+			for (int j = 0; j < numEnemies; j++) {
+				double value = row[j] - cheapestPrice[j];
+
+				if (value > bestValue) {
+					secondValue = bestValue;
+					bestValue = value;
+					bestEnemy = j;
+				}
+				else if (value > secondValue) {
+					secondValue = value;
+				}
+			}
+			// The best enemy's second slot competes with the other enemies' cheapest slots.
+			secondValue = Math.max(secondValue, row[bestEnemy] - secondCheapestPrice[bestEnemy]);
+
+			// Only one slot means there is no competition for it.
+			if (secondValue == Double.NEGATIVE_INFINITY) {
+				secondValue = bestValue;
+			}
+			// Raise the price of the best slot and take it, kicking out its previous holder.
+			int bestSlot = cheapestSlot[bestEnemy];
+			prices[bestSlot] += bestValue - secondValue + epsilon;
+			updateCheapestSlots(bestEnemy, prices);
+			int previousFootman = footmanOfSlot[bestSlot];
+
+			if (previousFootman >= 0) {
+				slotOfFootman[previousFootman] = -1;
+				unassigned[(head + size) % numFootmen] = previousFootman;
+				size++;
+			}
+			footmanOfSlot[bestSlot] = footman;
+			slotOfFootman[footman] = bestSlot;
+			profits[footman] = row[bestEnemy] - prices[bestSlot];
+		}
+
+		reverseAuction(qValues, prices, epsilon);
+	}
+
+	/**
+	 * Lets the spare slots bid for footmen by lowering their prices, until no spare slot is dearer than the
+	 * cheapest held slot. Every footman keeps holding a slot throughout.
+	 * @param qValues Q value of each footman attacking each enemy
+	 * @param prices Current slot prices, updated in place
+	 * @param epsilon The bidding increment
+	 */
+	private void reverseAuction(double[][] qValues, double[] prices, double epsilon) {
+
+		int numFootmen = qValues.length;
+		int numSlots = prices.length;
+
+		double lowestHeldPrice = Double.POSITIVE_INFINITY;
+
+		for (int slot = 0; slot < numSlots; slot++) {
+			if (footmanOfSlot[slot] >= 0) {
+				lowestHeldPrice = Math.min(lowestHeldPrice, prices[slot]);
+			}
+		}
+
+		// Queue of spare slots priced above every held slot.
+		int[] spare = new int[numSlots];
+		int head = 0;
+		int size = 0;
+
+		for (int slot = 0; slot < numSlots; slot++) {
+			if (footmanOfSlot[slot] < 0 && prices[slot] > lowestHeldPrice) {
+				spare[size++] = slot;
+			}
+		}
+
+		while (size > 0) {
+			int slot = spare[head];
+			head = (head + 1) % numSlots;
+			size--;
+
+			// Find the footman that would gain the most from this slot.
+			int enemy = enemyOfSlot[slot];
+			int bestFootman = -1;
+			double bestValue = Double.NEGATIVE_INFINITY;
+			double secondValue = Double.NEGATIVE_INFINITY;
+
+			for (int i = 0; i < numFootmen; i++) {
+				double value = qValues[i][enemy] - profits[i];
+
+				if (value > bestValue) {
+					secondValue = bestValue;
+					bestValue = value;
+					bestFootman = i;
+				}
+				else if (value > secondValue) {
+					secondValue = value;
+				}
+			}
+
+			if (bestValue >= lowestHeldPrice + epsilon) {
+				// Lower the price just enough to win the footman over, freeing its previous slot.
+				prices[slot] = Math.max(lowestHeldPrice, secondValue - epsilon);
+				int previousSlot = slotOfFootman[bestFootman];
+				footmanOfSlot[previousSlot] = -1;
+				footmanOfSlot[slot] = bestFootman;
+				slotOfFootman[bestFootman] = slot;
+				profits[bestFootman] = qValues[bestFootman][enemy] - prices[slot];
+
+				if (prices[previousSlot] > lowestHeldPrice) {
+					spare[(head + size) % numSlots] = previousSlot;
+					size++;
+				}
+			}
+			else {
+				// No footman wants it even at the lowest price, so it can stay spare at that price.
+				prices[slot] = lowestHeldPrice;
+			}
+			updateCheapestSlots(enemy, prices);
+		}
+	}
+
+	/**
+	 * @param row Q value of one footman attacking each enemy
+	 * @return The best Q value minus slot price the footman can get at the current prices.
+	 */
+	private double getBestValue(double[] row) {
+
+		double bestValue = Double.NEGATIVE_INFINITY;
+
+		for (int j = 0; j < row.length; j++) {
+			bestValue = Math.max(bestValue, row[j] - cheapestPrice[j]);
+		}
+		return bestValue;
+	}
+
+	/**
+	 * Finds the cheapest and second cheapest slot of an enemy.
+	 * @param enemy The enemy column
+	 * @param prices Current slot prices
+	 */
+	private void updateCheapestSlots(int enemy, double[] prices) {
+
+		int bestSlot = -1;
+		double bestPrice = Double.POSITIVE_INFINITY;
+		double secondPrice = Double.POSITIVE_INFINITY;
+
+		for (int slot = firstSlot[enemy]; slot < firstSlot[enemy + 1]; slot++) {
+			if (prices[slot] < bestPrice) {
+				secondPrice = bestPrice;
+				bestPrice = prices[slot];
+				bestSlot = slot;
+			}
+			else if (prices[slot] < secondPrice) {
+				secondPrice = prices[slot];
+			}
+		}
+		cheapestSlot[enemy] = bestSlot;
+		cheapestPrice[enemy] = bestPrice;
+		secondCheapestPrice[enemy] = secondPrice;
+	}
+
+	/**
+	 * Shifts all prices so the smallest is 0.
+	 * @param prices
+	 */
+	private void normalizePrices(double[] prices) {
+
+		double minPrice = Double.POSITIVE_INFINITY;
+
+		for (double price : prices) {
+			minPrice = Math.min(minPrice, price);
+		}
+		for (int i = 0; i < prices.length; i++) {
+			prices[i] -= minPrice;
+		}
+	}
+}